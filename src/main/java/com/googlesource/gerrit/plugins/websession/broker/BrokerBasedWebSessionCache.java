@@ -14,10 +14,18 @@
 
 package com.googlesource.gerrit.plugins.websession.broker;
 
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 import com.gerritforge.gerrit.eventbroker.BrokerApi;
 import com.gerritforge.gerrit.eventbroker.EventMessage;
+import com.google.common.base.Strings;
 import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.common.Nullable;
@@ -26,20 +34,24 @@ import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.extensions.registration.DynamicItem;
 import com.google.gerrit.httpd.WebSessionManager;
 import com.google.gerrit.httpd.WebSessionManager.Val;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.PluginConfig;
 import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.gerrit.server.events.Event;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import com.googlesource.gerrit.plugins.websession.broker.util.BoundedPool;
+import com.googlesource.gerrit.plugins.websession.broker.util.PayloadDecoder;
+import com.googlesource.gerrit.plugins.websession.broker.util.PayloadEncoder;
+import com.googlesource.gerrit.plugins.websession.broker.util.SessionExpiry;
 import com.googlesource.gerrit.plugins.websession.broker.util.TimeMachine;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.time.Instant;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
@@ -51,23 +63,52 @@ public class BrokerBasedWebSessionCache
 
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
   private static String DEFAULT_WEB_SESSION_TOPIC = "gerrit_web_session";
+  private static String REVOCATION_TOPIC_SUFFIX = "_revocation";
+  private static long DEFAULT_REVOCATION_RETENTION = HOURS.toSeconds(12);
+  private static long DEFAULT_MAX_REVOKED_SESSIONS = 100000;
+  private static int CODEC_POOL_SIZE = 16;
 
   Cache<String, Val> cache;
   String webSessionTopicName;
+  Set<String> revocationTopicNames;
+  Set<String> subscribedTopicNames;
   DynamicItem<BrokerApi> brokerApi;
   TimeMachine timeMachine;
+  BrokerBasedWebSessionMetrics metrics;
+  Cache<String, Boolean> revokedSessions;
+  boolean touchRefreshes;
+  /** Removals published before this time are replayed and not accounted in the latency metric. */
+  volatile long startedAt = Long.MAX_VALUE;
+
+  private final BoundedPool<PayloadEncoder> encoders =
+      new BoundedPool<>(CODEC_POOL_SIZE, PayloadEncoder::new);
+  private final BoundedPool<PayloadDecoder> decoders =
+      new BoundedPool<>(CODEC_POOL_SIZE, PayloadDecoder::new);
 
   @Inject
   public BrokerBasedWebSessionCache(
       @Named(WebSessionManager.CACHE_NAME) Cache<String, Val> cache,
       DynamicItem<BrokerApi> brokerApi,
       TimeMachine timeMachine,
+      BrokerBasedWebSessionMetrics metrics,
       PluginConfigFactory cfg,
       @PluginName String pluginName) {
     this.cache = cache;
     this.brokerApi = brokerApi;
     this.timeMachine = timeMachine;
+    this.metrics = metrics;
     this.webSessionTopicName = getWebSessionTopicName(cfg, pluginName);
+    this.revocationTopicNames = getRevocationTopicNames(cfg, pluginName);
+    this.subscribedTopicNames = getSubscribedTopicNames(cfg, pluginName);
+    this.touchRefreshes = isTouchRefreshes(cfg, pluginName);
+    if (isPriorityRevocations(cfg, pluginName)) {
+      this.revokedSessions =
+          CacheBuilder.newBuilder()
+              .maximumSize(getMaxRevokedSessions(cfg, pluginName))
+              .expireAfterWrite(getRevocationRetention(cfg, pluginName), SECONDS)
+              .removalListener(BrokerBasedWebSessionCache::onRevokedSessionRemoval)
+              .build();
+    }
   }
 
   protected void processMessage(EventMessage message) {
@@ -78,15 +119,27 @@ public class BrokerBasedWebSessionCache
     }
 
     WebSessionEvent event = (WebSessionEvent) message.getEvent();
+    if (event.operation == null) {
+      logger.atWarning().log(
+          "Skipping web session message of unknown operation type for '%s'", event.key);
+      return;
+    }
 
     switch (event.operation) {
       case ADD:
-        try (ByteArrayInputStream in = new ByteArrayInputStream(event.payload);
-            ObjectInputStream inputStream = new ObjectInputStream(in)) {
-          Val value = (Val) inputStream.readObject();
+        if (isRevoked(event.key)) {
+          logger.atFine().log("Skipping web session '%s' already removed", event.key);
+          break;
+        }
+        try {
+          Val value = (Val) decode(event.payload);
           Instant expires = Instant.ofEpochMilli(value.getExpiresAt());
           if (expires.isAfter(timeMachine.now())) {
             cache.put(event.key, value);
+            // The removal may have been consumed from its own topic since the check above
+            if (isRevoked(event.key)) {
+              cache.invalidate(event.key);
+            }
           }
 
         } catch (IOException | ClassNotFoundException e) {
@@ -94,8 +147,31 @@ public class BrokerBasedWebSessionCache
               "Malformed event '%s': [Exception: %s]", message.getHeader());
         }
         break;
+      case TOUCH:
+        if (event.expiresAt == null) {
+          logger.atWarning().log("Skipping refresh of web session '%s' without expiry", event.key);
+          break;
+        }
+        Val current = cache.getIfPresent(event.key);
+        if (current == null) {
+          logger.atFine().log("Skipping refresh of unknown web session '%s'", event.key);
+        } else if (!Instant.ofEpochMilli(event.expiresAt).isAfter(timeMachine.now())) {
+          cache.invalidate(event.key);
+        } else if (!SessionExpiry.isSupported()) {
+          logger.atWarning().atMostEvery(1, MINUTES).log(
+              "Cannot apply web session refreshes: disable publishRefreshesAsTouch");
+        } else if (event.expiresAt > current.getExpiresAt()) {
+          Val extended = extend(current, event.expiresAt);
+          if (extended != null) {
+            cache.asMap().replace(event.key, current, extended);
+          }
+        }
+        break;
       case REMOVE:
-        cache.invalidate(event.key);
+        if (revoke(event.key) && event.sentAt != null && event.sentAt >= startedAt) {
+          metrics.recordRevocationPropagationLatency(
+              timeMachine.now().toEpochMilli() - event.sentAt);
+        }
         break;
       default:
         logger.atWarning().log(
@@ -121,7 +197,11 @@ public class BrokerBasedWebSessionCache
 
   @Override
   public void put(String key, Val value) {
-    sendEvent(key, value, WebSessionEvent.Operation.ADD);
+    if (touchRefreshes && isRefresh(cache.getIfPresent(key), value)) {
+      sendEvent(key, new WebSessionEvent(key, value.getExpiresAt()));
+    } else {
+      sendEvent(key, value, WebSessionEvent.Operation.ADD);
+    }
     cache.put(key, value);
   }
 
@@ -135,7 +215,7 @@ public class BrokerBasedWebSessionCache
   @Override
   public void invalidate(Object key) {
     sendEvent((String) key, null, WebSessionEvent.Operation.REMOVE);
-    cache.invalidate(key);
+    revoke((String) key);
   }
 
   @Override
@@ -173,45 +253,216 @@ public class BrokerBasedWebSessionCache
         .forEach(entry -> cache.invalidate(entry.getKey()));
   }
 
+  private static boolean isRefresh(@Nullable Val current, Val value) {
+    return current != value && SessionExpiry.isSameSession(current, value);
+  }
+
+  /**
+   * Returns a copy of the session expiring at {@code expiresAt}, leaving the cached instance,
+   * which request threads read without locking, untouched.
+   */
+  private @Nullable Val extend(Val val, long expiresAt) {
+    try {
+      Val copy = (Val) decode(encode(val));
+      return SessionExpiry.setExpiresAt(copy, expiresAt) ? copy : null;
+    } catch (IOException | ClassNotFoundException e) {
+      logger.atSevere().withCause(e).log(
+          "Cannot copy web session for account id '%s'", val.getAccountId());
+      return null;
+    }
+  }
+
+  private byte[] encode(@Nullable Val value) throws IOException {
+    PayloadEncoder encoder = encoders.borrow();
+    byte[] payload = encoder.encode(value);
+    encoders.release(encoder);
+    return payload;
+  }
+
+  private Object decode(byte[] payload) throws IOException, ClassNotFoundException {
+    PayloadDecoder decoder = decoders.borrow();
+    Object value = decoder.decode(payload);
+    decoders.release(decoder);
+    return value;
+  }
+
   private void sendEvent(String key, Val value, WebSessionEvent.Operation operation) {
-    boolean succeeded = false;
-    try (ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ObjectOutputStream objectOutputStream = new ObjectOutputStream(out)) {
-
-      objectOutputStream.writeObject(value);
-      out.flush();
-      byte[] serializedObject = out.toByteArray();
-      EventMessage message =
-          brokerApi
-              .get()
-              .newMessage(UUID.randomUUID(), new WebSessionEvent(key, serializedObject, operation));
-      succeeded = brokerApi.get().send(webSessionTopicName, message);
+    try {
+      sendEvent(key, new WebSessionEvent(key, encode(value), operation));
     } catch (IOException e) {
       logger.atSevere().withCause(e).log(
           "Cannot serialize event for account id '%s': [Exception: %s]", value.getAccountId());
-    } finally {
-      if (!succeeded)
-        logger.atSevere().log(
-            "Cannot send web-session message for '%s Topic: '%s'", key, webSessionTopicName);
+      logger.atSevere().log(
+          "Cannot send web-session message for '%s Topic: '%s'",
+          key,
+          operation == WebSessionEvent.Operation.REMOVE
+              ? revocationTopicNames
+              : webSessionTopicName);
+    }
+  }
+
+  /**
+   * Removals are published to the topics of all the sites this site replicates sessions from, so
+   * that they also reach the origin site of a session which failed over to this site.
+   */
+  private void sendEvent(String key, WebSessionEvent event) {
+    boolean isRevocation = event.operation == WebSessionEvent.Operation.REMOVE;
+    long start = System.nanoTime();
+    if (isRevocation) {
+      event.sentAt = timeMachine.now().toEpochMilli();
+    }
+    EventMessage message = brokerApi.get().newMessage(UUID.randomUUID(), event);
+    if (isRevocation) {
+      for (String topicName : revocationTopicNames) {
+        send(key, topicName, message);
+      }
+      metrics.recordRevocationPublishLatency(System.nanoTime() - start);
+    } else {
+      send(key, webSessionTopicName, message);
+    }
+  }
+
+  private void send(String key, String topicName, EventMessage message) {
+    if (!brokerApi.get().send(topicName, message)) {
+      logger.atSevere().log("Cannot send web-session message for '%s Topic: '%s'", key, topicName);
+    }
+  }
+
+  /**
+   * Removes the session and, when revocations have their own topic, remembers it for the
+   * configured retention so that a late or replayed ADD cannot restore it.
+   *
+   * @return true if the removal had not been applied yet, false for another copy of it, as
+   *     removals are published to the topics of all the peer sites
+   */
+  private boolean revoke(String key) {
+    if (revokedSessions != null) {
+      boolean alreadyRevoked = revokedSessions.asMap().putIfAbsent(key, Boolean.TRUE) != null;
+      cache.asMap().remove(key);
+      return !alreadyRevoked;
+    }
+    return cache.asMap().remove(key) != null;
+  }
+
+  private static void onRevokedSessionRemoval(RemovalNotification<String, Boolean> notification) {
+    if (notification.getCause() == RemovalCause.SIZE) {
+      logger.atWarning().atMostEvery(1, MINUTES).log(
+          "Removed web session '%s' forgotten before revocationRetention elapsed:"
+              + " increase maxRevokedSessions",
+          notification.getKey());
     }
   }
 
+  private boolean isRevoked(String key) {
+    return revokedSessions != null && revokedSessions.getIfPresent(key) != null;
+  }
+
   public String getWebSessionTopicName(PluginConfigFactory cfg, String pluginName) {
-    return cfg.getFromGerritConfig(pluginName)
-        .getString("webSessionTopic", DEFAULT_WEB_SESSION_TOPIC);
+    PluginConfig pluginConfig = cfg.getFromGerritConfig(pluginName);
+    return siteTopicName(
+        pluginConfig.getString("webSessionTopic", DEFAULT_WEB_SESSION_TOPIC),
+        pluginConfig.getString("siteId"));
+  }
+
+  /**
+   * When the replication is scoped by site, web sessions are replicated only through the topics of
+   * this site and of its configured peer sites.
+   */
+  public Set<String> getReplicationTopicNames(PluginConfigFactory cfg, String pluginName) {
+    PluginConfig pluginConfig = cfg.getFromGerritConfig(pluginName);
+    Set<String> topicNames = new LinkedHashSet<>();
+    topicNames.add(getWebSessionTopicName(cfg, pluginName));
+    if (!Strings.isNullOrEmpty(pluginConfig.getString("siteId"))) {
+      String baseTopicName = pluginConfig.getString("webSessionTopic", DEFAULT_WEB_SESSION_TOPIC);
+      for (String peerSite : pluginConfig.getStringList("peerSite")) {
+        topicNames.add(siteTopicName(baseTopicName, peerSite));
+      }
+    }
+    return topicNames;
+  }
+
+  public Set<String> getRevocationTopicNames(PluginConfigFactory cfg, String pluginName) {
+    Set<String> topicNames = getReplicationTopicNames(cfg, pluginName);
+    if (!isPriorityRevocations(cfg, pluginName)) {
+      return topicNames;
+    }
+    Set<String> revocationTopicNames = new LinkedHashSet<>();
+    for (String topicName : topicNames) {
+      revocationTopicNames.add(topicName + REVOCATION_TOPIC_SUFFIX);
+    }
+    return revocationTopicNames;
+  }
+
+  /**
+   * Topics consumed by this site. Their consumers run concurrently, hence removals consumed from
+   * revocation topics are only guaranteed to win over late ADDs through the revoked sessions.
+   */
+  public Set<String> getSubscribedTopicNames(PluginConfigFactory cfg, String pluginName) {
+    Set<String> topicNames = new LinkedHashSet<>(getRevocationTopicNames(cfg, pluginName));
+    topicNames.addAll(getReplicationTopicNames(cfg, pluginName));
+    return topicNames;
+  }
+
+  private static boolean isTouchRefreshes(PluginConfigFactory cfg, String pluginName) {
+    if (!cfg.getFromGerritConfig(pluginName).getBoolean("publishRefreshesAsTouch", false)) {
+      return false;
+    }
+    if (!SessionExpiry.isSupported()) {
+      logger.atWarning().log(
+          "publishRefreshesAsTouch is not supported by this Gerrit version:"
+              + " web session refreshes are published as full sessions");
+      return false;
+    }
+    return true;
+  }
+
+  private static boolean isPriorityRevocations(PluginConfigFactory cfg, String pluginName) {
+    return cfg.getFromGerritConfig(pluginName).getBoolean("priorityRevocations", false);
+  }
+
+  /**
+   * Removed sessions are remembered for all the sites of the deployment, hence their number is
+   * unrelated to the size of the local web sessions cache.
+   */
+  private static long getMaxRevokedSessions(PluginConfigFactory cfg, String pluginName) {
+    long maxRevokedSessions =
+        cfg.getFromGerritConfig(pluginName)
+            .getLong("maxRevokedSessions", DEFAULT_MAX_REVOKED_SESSIONS);
+    if (maxRevokedSessions <= 0) {
+      logger.atWarning().log(
+          "Invalid maxRevokedSessions %d: must be positive, using default of %d",
+          maxRevokedSessions, DEFAULT_MAX_REVOKED_SESSIONS);
+      return DEFAULT_MAX_REVOKED_SESSIONS;
+    }
+    return maxRevokedSessions;
+  }
+
+  private static long getRevocationRetention(PluginConfigFactory cfg, String pluginName) {
+    String fromConfig =
+        Strings.nullToEmpty(cfg.getFromGerritConfig(pluginName).getString("revocationRetention"));
+    return ConfigUtil.getTimeUnit(fromConfig, DEFAULT_REVOCATION_RETENTION, SECONDS);
+  }
+
+  private static String siteTopicName(String baseTopicName, @Nullable String siteId) {
+    return Strings.isNullOrEmpty(siteId) ? baseTopicName : baseTopicName + "_" + siteId;
   }
 
   public static class WebSessionEvent extends Event {
 
     public enum Operation {
       ADD,
-      REMOVE;
+      REMOVE,
+      TOUCH;
     }
 
     static final String TYPE = "web-session";
     public String key;
     public byte[] payload;
     public Operation operation;
+    /** New expiry in milliseconds of a TOUCH. */
+    public Long expiresAt;
+    /** Publishing time in milliseconds of a REMOVE, finer than {@link Event#eventCreatedOn}. */
+    public Long sentAt;
 
     protected WebSessionEvent(String key, byte[] payload, Operation operation) {
       super(TYPE);
@@ -219,6 +470,14 @@ public class BrokerBasedWebSessionCache
       this.payload = payload;
       this.operation = operation;
     }
+
+    /** Refresh of an existing session, carrying only its new expiry. */
+    protected WebSessionEvent(String key, long expiresAt) {
+      super(TYPE);
+      this.key = key;
+      this.operation = Operation.TOUCH;
+      this.expiresAt = expiresAt;
+    }
   }
 
   @Override
@@ -226,10 +485,16 @@ public class BrokerBasedWebSessionCache
     if (brokerApi == null || brokerApi.get() == null) {
       throw new IllegalStateException("Cannot find binding for BrokerApi");
     }
-    brokerApi.get().receiveAsync(webSessionTopicName, this::processMessage);
-    brokerApi.get().replayAllEvents(webSessionTopicName);
+    startedAt = timeMachine.now().toEpochMilli();
+    for (String topicName : subscribedTopicNames) {
+      brokerApi.get().receiveAsync(topicName, this::processMessage);
+      brokerApi.get().replayAllEvents(topicName);
+    }
   }
 
   @Override
-  public void stop() {}
+  public void stop() {
+    encoders.clear();
+    decoders.clear();
+  }
 }
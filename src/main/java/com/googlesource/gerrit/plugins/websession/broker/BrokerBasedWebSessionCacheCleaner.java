@@ -16,48 +16,181 @@ package com.googlesource.gerrit.plugins.websession.broker;
 
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import com.google.common.base.Strings;
+import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.httpd.WebSessionManager.Val;
 import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.PluginConfig;
 import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.gerrit.server.git.WorkQueue;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.websession.broker.util.TimeMachine;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 @Singleton
 public class BrokerBasedWebSessionCacheCleaner implements LifecycleListener {
 
-  private static int DEFAULT_CLEANUP_INTERVAL = 24;
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final String CLEANUP_QUEUE_NAME = "WebSessionCacheCleaner";
+  private static final long DEFAULT_CLEANUP_INTERVAL = HOURS.toMillis(1);
+  private static final long DEFAULT_CLEANUP_MIN_INTERVAL = MINUTES.toMillis(1);
+  private static final long DEFAULT_CLEANUP_MAX_RUN_TIME = 500;
+  private static final double HIGH_EXPIRY_RATIO = 0.1;
+  private static final double LOW_EXPIRY_RATIO = 0.01;
 
   WorkQueue queue;
   Provider<CleanupTask> cleanupTaskProvider;
+  ScheduledExecutorService executor;
   ScheduledFuture<?> scheduledCleanupTask;
+  CleanupTask cleanupTask;
   long cleanupIntervalMillis;
+  long cleanupMinIntervalMillis;
+  long cleanupMaxRunTimeMillis;
+  long currentIntervalMillis;
+
+  /** Outcome of a single cleanup slice. */
+  enum SliceResult {
+    /** The pass is not over yet and resumes with the next slice. */
+    INCOMPLETE,
+    /** The slice completed a full pass over the cache. */
+    COMPLETED,
+    /** The slice failed and the pass has been abandoned. */
+    FAILED
+  }
 
   static class CleanupTask implements Runnable {
+    private static final int TIME_CHECK_EVERY = 64;
+
     private final BrokerBasedWebSessionCache brokerBasedWebSessionCache;
+    private final TimeMachine timeMachine;
+    private final BrokerBasedWebSessionMetrics metrics;
     private final String pluginName;
 
+    private Consumer<SliceResult> sliceListener = result -> {};
+    private Iterator<Entry<String, Val>> cursor;
+    private long maxRunTimeMillis = Long.MAX_VALUE;
+    private long passScanned;
+    private long passExpired;
+    private int passSlices;
+    private long passElapsedNanos;
+
     @Inject
     CleanupTask(
-        BrokerBasedWebSessionCache brokerBasedWebSessionCache, @PluginName String pluginName) {
+        BrokerBasedWebSessionCache brokerBasedWebSessionCache,
+        TimeMachine timeMachine,
+        BrokerBasedWebSessionMetrics metrics,
+        @PluginName String pluginName) {
       this.brokerBasedWebSessionCache = brokerBasedWebSessionCache;
+      this.timeMachine = timeMachine;
+      this.metrics = metrics;
       this.pluginName = pluginName;
     }
 
+    void setMaxRunTimeMillis(long maxRunTimeMillis) {
+      this.maxRunTimeMillis = maxRunTimeMillis;
+    }
+
+    /** Sets the listener notified of the outcome of each slice. */
+    void setSliceListener(Consumer<SliceResult> sliceListener) {
+      this.sliceListener = sliceListener;
+    }
+
     @Override
     public void run() {
-      brokerBasedWebSessionCache.cleanUp();
+      SliceResult result = SliceResult.FAILED;
+      try {
+        result = runSlice() ? SliceResult.COMPLETED : SliceResult.INCOMPLETE;
+      } catch (RuntimeException e) {
+        logger.atSevere().withCause(e).log("%s failed", this);
+        cursor = null;
+      } finally {
+        sliceListener.accept(result);
+      }
+    }
+
+    /**
+     * Scans the cache for expired sessions until the current pass is over or the maximum run time
+     * is exhausted. The next invocation resumes from where the previous one stopped.
+     *
+     * @return true if the slice completed a full pass over the cache
+     */
+    boolean runSlice() {
+      long start = System.nanoTime();
+      long maxRunTimeNanos = MILLISECONDS.toNanos(maxRunTimeMillis);
+      ConcurrentMap<String, Val> sessions = brokerBasedWebSessionCache.asMap();
+      if (cursor == null) {
+        cursor = sessions.entrySet().iterator();
+        passScanned = 0;
+        passExpired = 0;
+        passSlices = 0;
+        passElapsedNanos = 0;
+      }
+
+      Instant now = timeMachine.now();
+      long scanned = 0;
+      long expired = 0;
+      while (cursor.hasNext()) {
+        Entry<String, Val> entry = cursor.next();
+        scanned++;
+        if (Instant.ofEpochMilli(entry.getValue().getExpiresAt()).isBefore(now)
+            && sessions.remove(entry.getKey(), entry.getValue())) {
+          expired++;
+        }
+        if (scanned % TIME_CHECK_EVERY == 0 && System.nanoTime() - start > maxRunTimeNanos) {
+          break;
+        }
+      }
+
+      long elapsed = System.nanoTime() - start;
+      passScanned += scanned;
+      passExpired += expired;
+      passSlices++;
+      passElapsedNanos += elapsed;
+      logger.atFine().log(
+          "[%s] Cleanup slice scanned %d sessions, removed %d expired in %d ms",
+          pluginName, scanned, expired, NANOSECONDS.toMillis(elapsed));
+
+      if (cursor.hasNext()) {
+        return false;
+      }
+      cursor = null;
+      metrics.recordCleanupPass(passExpired, passElapsedNanos);
+      logger.atFine().log(
+          "[%s] Cleanup pass scanned %d sessions, removed %d expired in %d slices (%d ms)",
+          pluginName,
+          passScanned,
+          passExpired,
+          passSlices,
+          NANOSECONDS.toMillis(passElapsedNanos));
+      return true;
+    }
+
+    long getPassScanned() {
+      return passScanned;
+    }
+
+    long getPassExpired() {
+      return passExpired;
     }
 
     @Override
     public String toString() {
-      return String.format("[%s] Clean up expired file based websessions", pluginName);
+      return String.format("[%s] Clean up expired broker based websessions", pluginName);
     }
   }
 
@@ -69,32 +202,88 @@ public class BrokerBasedWebSessionCacheCleaner implements LifecycleListener {
       @PluginName String pluginName) {
     this.queue = queue;
     this.cleanupTaskProvider = cleanupTaskProvider;
-    this.cleanupIntervalMillis = getCleanupInterval(cfg, pluginName);
+    PluginConfig pluginConfig = cfg.getFromGerritConfig(pluginName);
+    this.cleanupIntervalMillis =
+        getTimeMillis(pluginConfig, "cleanupInterval", DEFAULT_CLEANUP_INTERVAL, HOURS);
+    this.cleanupMinIntervalMillis =
+        Math.min(
+            cleanupIntervalMillis,
+            getTimeMillis(
+                pluginConfig, "cleanupMinInterval", DEFAULT_CLEANUP_MIN_INTERVAL, SECONDS));
+    this.cleanupMaxRunTimeMillis =
+        getTimeMillis(
+            pluginConfig, "cleanupMaxRunTime", DEFAULT_CLEANUP_MAX_RUN_TIME, MILLISECONDS);
+    this.currentIntervalMillis = cleanupMinIntervalMillis;
   }
 
   @Override
-  public void start() {
-    scheduledCleanupTask =
-        queue
-            .getDefaultQueue()
-            .scheduleAtFixedRate(
-                cleanupTaskProvider.get(),
-                SECONDS.toMillis(1),
-                cleanupIntervalMillis,
-                MILLISECONDS);
+  public synchronized void start() {
+    cleanupTask = cleanupTaskProvider.get();
+    cleanupTask.setMaxRunTimeMillis(cleanupMaxRunTimeMillis);
+    cleanupTask.setSliceListener(this::scheduleNext);
+    executor = queue.createQueue(1, CLEANUP_QUEUE_NAME);
+    schedule(SECONDS.toMillis(1));
   }
 
   @Override
-  public void stop() {
+  public synchronized void stop() {
     if (scheduledCleanupTask != null) {
       scheduledCleanupTask.cancel(true);
       scheduledCleanupTask = null;
     }
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  private synchronized void schedule(long delayMillis) {
+    if (executor != null) {
+      scheduledCleanupTask = executor.schedule(cleanupTask, delayMillis, MILLISECONDS);
+    }
+  }
+
+  private void scheduleNext(SliceResult result) {
+    schedule(nextDelayMillis(result, cleanupTask.getPassScanned(), cleanupTask.getPassExpired()));
   }
 
-  private Long getCleanupInterval(PluginConfigFactory cfg, String pluginName) {
-    String fromConfig =
-        Strings.nullToEmpty(cfg.getFromGerritConfig(pluginName).getString("cleanupInterval"));
-    return HOURS.toMillis(ConfigUtil.getTimeUnit(fromConfig, DEFAULT_CLEANUP_INTERVAL, HOURS));
+  /**
+   * Computes the delay before the next cleanup slice. An unfinished pass is resumed after a pause
+   * as long as the slice itself and a failed one is retried after the current interval, otherwise
+   * the interval is adapted to the observed expiry density and kept within the configured bounds.
+   */
+  long nextDelayMillis(SliceResult result, long scanned, long expired) {
+    if (result == SliceResult.INCOMPLETE) {
+      return cleanupMaxRunTimeMillis;
+    }
+    if (result == SliceResult.FAILED) {
+      return currentIntervalMillis;
+    }
+
+    double expiryRatio = scanned == 0 ? 0 : (double) expired / scanned;
+    if (expiryRatio >= HIGH_EXPIRY_RATIO) {
+      currentIntervalMillis = currentIntervalMillis / 2;
+    } else if (expiryRatio < LOW_EXPIRY_RATIO) {
+      currentIntervalMillis = currentIntervalMillis * 2;
+    }
+    currentIntervalMillis =
+        Math.max(cleanupMinIntervalMillis, Math.min(cleanupIntervalMillis, currentIntervalMillis));
+    return currentIntervalMillis;
+  }
+
+  private static long getTimeMillis(
+      PluginConfig pluginConfig, String name, long defaultMillis, TimeUnit defaultUnit) {
+    String fromConfig = Strings.nullToEmpty(pluginConfig.getString(name)).trim();
+    long millis =
+        fromConfig.matches("[0-9]+")
+            ? defaultUnit.toMillis(Long.parseLong(fromConfig))
+            : ConfigUtil.getTimeUnit(fromConfig, defaultMillis, MILLISECONDS);
+    if (millis <= 0) {
+      logger.atWarning().log(
+          "Invalid %s '%s': must be positive, using default of %d ms",
+          name, fromConfig, defaultMillis);
+      return defaultMillis;
+    }
+    return millis;
   }
 }
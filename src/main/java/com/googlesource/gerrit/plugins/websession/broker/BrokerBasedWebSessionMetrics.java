@@ -0,0 +1,77 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.broker;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+@Singleton
+public class BrokerBasedWebSessionMetrics {
+  private final Timer0 revocationPublishLatency;
+  private final Timer0 revocationPropagationLatency;
+  private final Counter0 cleanupExpiredSessions;
+  private final Timer0 cleanupPassLatency;
+
+  @Inject
+  public BrokerBasedWebSessionMetrics(MetricMaker metricMaker) {
+    this.revocationPublishLatency =
+        metricMaker.newTimer(
+            "revocation_publish_latency",
+            new Description("Time spent publishing a web session removal to the broker")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+    this.revocationPropagationLatency =
+        metricMaker.newTimer(
+            "revocation_propagation_latency",
+            new Description(
+                    "Time between the publishing of a web session removal and its application"
+                        + " on this site")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+    this.cleanupExpiredSessions =
+        metricMaker.newCounter(
+            "cleanup_expired_sessions",
+            new Description("Expired web sessions removed by the cleanup")
+                .setRate()
+                .setUnit("sessions"));
+    this.cleanupPassLatency =
+        metricMaker.newTimer(
+            "cleanup_pass_latency",
+            new Description("Time spent scanning all the web sessions for expired ones")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+  }
+
+  public void recordRevocationPublishLatency(long nanos) {
+    revocationPublishLatency.record(nanos, NANOSECONDS);
+  }
+
+  public void recordRevocationPropagationLatency(long millis) {
+    revocationPropagationLatency.record(Math.max(0, millis), MILLISECONDS);
+  }
+
+  public void recordCleanupPass(long expiredSessions, long nanos) {
+    cleanupExpiredSessions.incrementBy(expiredSessions);
+    cleanupPassLatency.record(nanos, NANOSECONDS);
+  }
+}
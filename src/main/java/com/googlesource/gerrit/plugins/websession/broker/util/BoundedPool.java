@@ -0,0 +1,49 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.broker.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Pool of reusable objects with a bounded number of idle instances.
+ *
+ * <p>Objects are created on demand when the pool is empty and dropped when it is full, so callers
+ * never block.
+ */
+public class BoundedPool<T> {
+  private final BlockingQueue<T> idle;
+  private final Supplier<T> factory;
+
+  public BoundedPool(int capacity, Supplier<T> factory) {
+    this.idle = new ArrayBlockingQueue<>(capacity);
+    this.factory = factory;
+  }
+
+  public T borrow() {
+    T instance = idle.poll();
+    return instance != null ? instance : factory.get();
+  }
+
+  /** Returns an instance to the pool. Instances left inconsistent by a failure must be dropped. */
+  public void release(T instance) {
+    idle.offer(instance);
+  }
+
+  public void clear() {
+    idle.clear();
+  }
+}
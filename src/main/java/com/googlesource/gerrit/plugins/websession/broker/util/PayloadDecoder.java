@@ -0,0 +1,123 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.broker.util;
+
+import static java.io.ObjectStreamConstants.STREAM_MAGIC;
+import static java.io.ObjectStreamConstants.STREAM_VERSION;
+import static java.io.ObjectStreamConstants.TC_RESET;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+
+/**
+ * Reusable Java serialization decoder for payloads produced by {@link PayloadEncoder} or by a
+ * fresh {@link java.io.ObjectOutputStream}.
+ *
+ * <p>The stream header of every payload is checked and skipped, and a reset marker is fed to the
+ * underlying {@link ObjectInputStream} instead, so that no state leaks from one payload to the
+ * next. Instances are not thread-safe and are meant to be borrowed from a pool.
+ */
+public class PayloadDecoder {
+  private static final byte[] STREAM_HEADER =
+      new byte[] {
+        (byte) (STREAM_MAGIC >> 8),
+        (byte) STREAM_MAGIC,
+        (byte) (STREAM_VERSION >> 8),
+        (byte) STREAM_VERSION
+      };
+
+  private final PayloadInputStream in = new PayloadInputStream();
+  private final ObjectInputStream objectInputStream;
+
+  public PayloadDecoder() {
+    try {
+      in.setPayload(STREAM_HEADER, 0, false);
+      objectInputStream = new ObjectInputStream(in);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Deserializes the single object contained in {@code payload}.
+   *
+   * <p>After a failure the decoder must be discarded.
+   */
+  public Object decode(byte[] payload) throws IOException, ClassNotFoundException {
+    if (payload.length < STREAM_HEADER.length) {
+      throw new StreamCorruptedException("Truncated payload");
+    }
+    for (int i = 0; i < STREAM_HEADER.length; i++) {
+      if (payload[i] != STREAM_HEADER[i]) {
+        throw new StreamCorruptedException("Invalid stream header");
+      }
+    }
+
+    in.setPayload(payload, STREAM_HEADER.length, true);
+    Object value = objectInputStream.readObject();
+    if (in.available() > 0) {
+      throw new StreamCorruptedException("Unexpected trailing data in payload");
+    }
+    return value;
+  }
+
+  private static class PayloadInputStream extends InputStream {
+    private byte[] buf;
+    private int pos;
+    private boolean resetPending;
+
+    void setPayload(byte[] buf, int pos, boolean resetPending) {
+      this.buf = buf;
+      this.pos = pos;
+      this.resetPending = resetPending;
+    }
+
+    @Override
+    public int read() {
+      if (resetPending) {
+        resetPending = false;
+        return TC_RESET;
+      }
+      return pos < buf.length ? buf[pos++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (resetPending) {
+        resetPending = false;
+        b[off] = TC_RESET;
+        return 1;
+      }
+      int n = Math.min(len, buf.length - pos);
+      if (n <= 0) {
+        return -1;
+      }
+      System.arraycopy(buf, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return (resetPending ? 1 : 0) + buf.length - pos;
+    }
+  }
+}
@@ -0,0 +1,66 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.broker.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Reusable Java serialization encoder.
+ *
+ * <p>Each encoded payload is a complete serialization stream, identical to the one produced by a
+ * fresh {@link ObjectOutputStream}, but the underlying buffer and stream are kept across calls.
+ * Instances are not thread-safe and are meant to be borrowed from a pool.
+ */
+public class PayloadEncoder {
+  private final Buffer out = new Buffer();
+  private final ObjectOutputStream objectOutputStream;
+  private final int headerLength;
+
+  public PayloadEncoder() {
+    try {
+      objectOutputStream = new ObjectOutputStream(out);
+      objectOutputStream.flush();
+      headerLength = out.size();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Serializes {@code value} into a standalone payload.
+   *
+   * <p>After a failure the encoder must be discarded.
+   */
+  public byte[] encode(Object value) throws IOException {
+    try {
+      objectOutputStream.writeObject(value);
+      objectOutputStream.flush();
+      return out.toByteArray();
+    } finally {
+      objectOutputStream.reset();
+      objectOutputStream.flush();
+      out.truncate(headerLength);
+    }
+  }
+
+  private static class Buffer extends ByteArrayOutputStream {
+    void truncate(int size) {
+      count = size;
+    }
+  }
+}
@@ -0,0 +1,96 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.broker.util;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import java.lang.reflect.Field;
+import java.util.Objects;
+
+/**
+ * Moves the expiry of a {@link Val}.
+ *
+ * <p>A web session refresh only moves the refresh and expiry timestamps of a {@link Val}, which
+ * does not expose any way to change them. The two private fields are set through reflection,
+ * keeping the distance between them unchanged, and are therefore tied to the field names of the
+ * running Gerrit version.
+ */
+public class SessionExpiry {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final Field REFRESH_COOKIE_AT = field("refreshCookieAt");
+  private static final Field EXPIRES_AT = field("expiresAt");
+
+  /** @return true if the session timestamps can be updated */
+  public static boolean isSupported() {
+    return REFRESH_COOKIE_AT != null && EXPIRES_AT != null;
+  }
+
+  /**
+   * @return true if the two values describe the same session, possibly with different refresh
+   *     and expiry timestamps
+   */
+  public static boolean isSameSession(Val current, Val updated) {
+    return current != null
+        && updated != null
+        && Objects.equals(current.getAccountId(), updated.getAccountId())
+        && Objects.equals(current.getExternalId(), updated.getExternalId())
+        && Objects.equals(current.getSessionId(), updated.getSessionId())
+        && Objects.equals(current.getAuth(), updated.getAuth());
+  }
+
+  /**
+   * Moves the expiry of the session forward to {@code expiresAt}.
+   *
+   * <p>The fields are not guarded against concurrent readers: {@code val} must be a copy that has
+   * not been shared with other threads yet.
+   *
+   * @return true if the session has been extended, false if it already expires at or after
+   *     {@code expiresAt} or its timestamps cannot be updated
+   */
+  public static boolean setExpiresAt(Val val, long expiresAt) {
+    if (!isSupported()) {
+      return false;
+    }
+
+    long currentExpiresAt = val.getExpiresAt();
+    if (expiresAt <= currentExpiresAt) {
+      return false;
+    }
+    try {
+      long delta = expiresAt - currentExpiresAt;
+      REFRESH_COOKIE_AT.setLong(val, REFRESH_COOKIE_AT.getLong(val) + delta);
+      EXPIRES_AT.setLong(val, expiresAt);
+      return true;
+    } catch (IllegalAccessException e) {
+      logger.atSevere().withCause(e).log("Cannot extend web session expiry");
+      return false;
+    }
+  }
+
+  private static Field field(String name) {
+    try {
+      Field field = Val.class.getDeclaredField(name);
+      field.setAccessible(true);
+      return field;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      logger.atWarning().withCause(e).log(
+          "Cannot access web session field '%s': session refreshes cannot be applied", name);
+      return null;
+    }
+  }
+
+  private SessionExpiry() {}
+}
@@ -0,0 +1,155 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.broker;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.gerritforge.gerrit.eventbroker.BrokerApi;
+import com.gerritforge.gerrit.eventbroker.EventMessage;
+import com.gerritforge.gerrit.eventbroker.EventMessage.Header;
+import com.google.common.cache.CacheBuilder;
+import com.google.gerrit.extensions.registration.DynamicItem;
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.events.Event;
+import com.googlesource.gerrit.plugins.websession.broker.BrokerBasedWebSessionCache.WebSessionEvent;
+import com.googlesource.gerrit.plugins.websession.broker.BrokerBasedWebSessionCache.WebSessionEvent.Operation;
+import com.googlesource.gerrit.plugins.websession.broker.util.TimeMachine;
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.UUID;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures the bytes allocated per web session published through {@link
+ * BrokerBasedWebSessionCache#put} and consumed through {@link
+ * BrokerBasedWebSessionCache#processMessage}, with the codecs reused from the pools and with a
+ * new codec for every operation. Run through the manual websession-broker_benchmarks target; the
+ * figures are reported in the assertion messages.
+ */
+public class BrokerBasedWebSessionCacheAllocationBenchmark {
+  private static final int WARMUP_ITERATIONS = 20000;
+  private static final int MEASURED_ITERATIONS = 20000;
+  private static final String KEY = "aSceprtma6B0qZ0hKxXHvQ5iyfUhCcFXxG";
+  private static final String PLUGIN_NAME = "websession-broker";
+
+  private BrokerBasedWebSessionCache objectUnderTest;
+  private Val session;
+  private EventMessage loginMessage;
+
+  @Before
+  public void setUp() throws Exception {
+    assumeTrue(isThreadAllocatedMemorySupported());
+
+    // Stub-only mocks do not record invocations, which would be accounted as allocations
+    BrokerApi brokerApi = mock(BrokerApi.class, withSettings().stubOnly());
+    TimeMachine timeMachine = mock(TimeMachine.class, withSettings().stubOnly());
+    PluginConfigFactory cfg = mock(PluginConfigFactory.class, withSettings().stubOnly());
+    PluginConfig pluginConfig = mock(PluginConfig.class, withSettings().stubOnly());
+    when(cfg.getFromGerritConfig(PLUGIN_NAME)).thenReturn(pluginConfig);
+    when(pluginConfig.getString("webSessionTopic", "gerrit_web_session"))
+        .thenReturn("gerrit_web_session");
+    when(timeMachine.now()).thenReturn(Instant.EPOCH);
+
+    Header header = new Header(UUID.randomUUID(), UUID.randomUUID());
+    loginMessage =
+        new EventMessage(
+            header,
+            new WebSessionEvent(KEY, BrokerBasedWebSessionCacheTest.defaultPayload, Operation.ADD));
+    when(brokerApi.newMessage(any(UUID.class), any(Event.class))).thenReturn(loginMessage);
+    when(brokerApi.send(any(), any())).thenReturn(true);
+
+    objectUnderTest =
+        new BrokerBasedWebSessionCache(
+            CacheBuilder.newBuilder().build(),
+            DynamicItem.itemOf(BrokerApi.class, brokerApi),
+            timeMachine,
+            mock(BrokerBasedWebSessionMetrics.class, withSettings().stubOnly()),
+            cfg,
+            PLUGIN_NAME);
+
+    try (ObjectInputStream in =
+        new ObjectInputStream(
+            new ByteArrayInputStream(BrokerBasedWebSessionCacheTest.defaultPayload))) {
+      session = (Val) in.readObject();
+    }
+  }
+
+  @Test
+  public void publishingReusesPooledEncoders() throws Exception {
+    long pooled = bytesPerOp(() -> objectUnderTest.put(KEY, session));
+    long unpooled = bytesPerOp(this::putWithNewEncoder);
+
+    assertWithMessage(
+            "put(): %s bytes/op with pooled encoders, %s bytes/op with a new encoder",
+            pooled, unpooled)
+        .that(pooled)
+        .isLessThan(unpooled);
+  }
+
+  @Test
+  public void consumingReusesPooledDecoders() throws Exception {
+    long pooled = bytesPerOp(() -> objectUnderTest.processMessage(loginMessage));
+    long unpooled = bytesPerOp(this::processMessageWithNewDecoder);
+
+    assertWithMessage(
+            "processMessage(): %s bytes/op with pooled decoders, %s bytes/op with a new decoder",
+            pooled, unpooled)
+        .that(pooled)
+        .isLessThan(unpooled);
+  }
+
+  /** Emptying the pools, as stop() does, forces a new codec to be created by the next operation. */
+  private void putWithNewEncoder() {
+    objectUnderTest.stop();
+    objectUnderTest.put(KEY, session);
+  }
+
+  private void processMessageWithNewDecoder() {
+    objectUnderTest.stop();
+    objectUnderTest.processMessage(loginMessage);
+  }
+
+  private static long bytesPerOp(Runnable operation) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      operation.run();
+    }
+    long before = threadAllocatedBytes();
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      operation.run();
+    }
+    return (threadAllocatedBytes() - before) / MEASURED_ITERATIONS;
+  }
+
+  private static boolean isThreadAllocatedMemorySupported() {
+    return ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+        && ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .isThreadAllocatedMemorySupported();
+  }
+
+  private static long threadAllocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -14,7 +14,10 @@
 
 package com.googlesource.gerrit.plugins.websession.broker;
 
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isA;
 import static org.mockito.Mockito.doReturn;
@@ -23,11 +26,21 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.common.collect.Maps;
+import com.google.gerrit.httpd.WebSessionManager.Val;
 import com.google.gerrit.server.config.PluginConfig;
 import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.gerrit.server.git.WorkQueue;
 import com.google.inject.Provider;
 import com.googlesource.gerrit.plugins.websession.broker.BrokerBasedWebSessionCacheCleaner.CleanupTask;
+import com.googlesource.gerrit.plugins.websession.broker.BrokerBasedWebSessionCacheCleaner.SliceResult;
+import com.googlesource.gerrit.plugins.websession.broker.util.TimeMachine;
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -40,12 +53,15 @@ import org.mockito.junit.MockitoJUnitRunner;
 @RunWith(MockitoJUnitRunner.class)
 public class BrokerBasedWebSessionCacheCleanerTest {
   private static Long CLEANUP_INTERVAL = 1L;
+  private static String CLEANUP_MIN_INTERVAL = "10 min";
   private static String SOME_PLUGIN_NAME = "somePluginName";
 
   @Mock private ScheduledThreadPoolExecutor executorMock;
   @Mock private ScheduledFuture<?> scheduledFutureMock;
   @Mock private WorkQueue workQueueMock;
   @Mock private Provider<CleanupTask> cleanupTaskProviderMock;
+  @Mock private TimeMachine timeMachineMock;
+  @Mock private BrokerBasedWebSessionMetrics metricsMock;
   @Mock PluginConfigFactory cfg;
   @Mock PluginConfig pluginConfig;
 
@@ -54,34 +70,163 @@ public class BrokerBasedWebSessionCacheCleanerTest {
   @Before
   public void setUp() {
     when(pluginConfig.getString("cleanupInterval")).thenReturn(CLEANUP_INTERVAL.toString());
+    when(pluginConfig.getString("cleanupMinInterval")).thenReturn(CLEANUP_MIN_INTERVAL);
     when(cfg.getFromGerritConfig(SOME_PLUGIN_NAME)).thenReturn(pluginConfig);
-    when(cleanupTaskProviderMock.get()).thenReturn(new CleanupTask(null, null));
-    when(workQueueMock.getDefaultQueue()).thenReturn(executorMock);
+    when(cleanupTaskProviderMock.get()).thenReturn(new CleanupTask(null, null, null, null));
+    when(workQueueMock.createQueue(anyInt(), anyString())).thenReturn(executorMock);
     doReturn(scheduledFutureMock)
         .when(executorMock)
-        .scheduleAtFixedRate(isA(CleanupTask.class), anyLong(), anyLong(), isA(TimeUnit.class));
+        .schedule(isA(CleanupTask.class), anyLong(), isA(TimeUnit.class));
     objectUnderTest =
         new BrokerBasedWebSessionCacheCleaner(
             workQueueMock, cleanupTaskProviderMock, cfg, SOME_PLUGIN_NAME);
   }
 
   @Test
-  public void testCleanupTaskRun() {
-    BrokerBasedWebSessionCache cacheMock = mock(BrokerBasedWebSessionCache.class);
-    CleanupTask task = new CleanupTask(cacheMock, null);
-    int numberOfRuns = 5;
-    for (int i = 0; i < numberOfRuns; i++) {
-      task.run();
+  public void testCleanupTaskRemovesExpiredSessions() throws Exception {
+    ConcurrentMap<String, Val> sessions = newSessions(2);
+    CleanupTask task = newCleanupTask(sessions, Instant.MAX);
+
+    assertThat(task.runSlice()).isTrue();
+
+    assertThat(sessions).isEmpty();
+    assertThat(task.getPassScanned()).isEqualTo(2);
+    assertThat(task.getPassExpired()).isEqualTo(2);
+  }
+
+  @Test
+  public void testCleanupTaskKeepsValidSessions() throws Exception {
+    ConcurrentMap<String, Val> sessions = newSessions(2);
+    CleanupTask task = newCleanupTask(sessions, Instant.EPOCH);
+
+    assertThat(task.runSlice()).isTrue();
+
+    assertThat(sessions).hasSize(2);
+    assertThat(task.getPassScanned()).isEqualTo(2);
+    assertThat(task.getPassExpired()).isEqualTo(0);
+  }
+
+  @Test
+  public void testCleanupTaskResumesWhenRunTimeIsExhausted() throws Exception {
+    int numberOfSessions = 200;
+    ConcurrentMap<String, Val> sessions = newSessions(numberOfSessions);
+    CleanupTask task = newCleanupTask(sessions, Instant.MAX);
+    task.setMaxRunTimeMillis(0);
+
+    int numberOfSlices = 1;
+    while (!task.runSlice()) {
+      numberOfSlices++;
     }
-    verify(cacheMock, times(numberOfRuns)).cleanUp();
+
+    assertThat(numberOfSlices).isGreaterThan(1);
+    assertThat(sessions).isEmpty();
+    assertThat(task.getPassScanned()).isEqualTo(numberOfSessions);
+    assertThat(task.getPassExpired()).isEqualTo(numberOfSessions);
   }
 
   @Test
   public void testCleanupTaskIsScheduledOnStart() {
     objectUnderTest.start();
+    verify(workQueueMock, times(1)).createQueue(eq(1), anyString());
     verify(executorMock, times(1))
-        .scheduleAtFixedRate(
-            isA(CleanupTask.class), eq(1000l), eq(3600000L), eq(TimeUnit.MILLISECONDS));
+        .schedule(isA(CleanupTask.class), eq(1000L), eq(TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testCleanupTaskRunNotifiesSliceListener() throws Exception {
+    CleanupTask task = newCleanupTask(newSessions(2), Instant.MAX);
+    List<SliceResult> slices = new ArrayList<>();
+    task.setSliceListener(slices::add);
+
+    task.run();
+
+    assertThat(slices).containsExactly(SliceResult.COMPLETED);
+    verify(metricsMock, times(1)).recordCleanupPass(eq(2L), anyLong());
+  }
+
+  @Test
+  public void testCleanupTaskRunNotifiesSliceListenerOnFailure() {
+    BrokerBasedWebSessionCache cacheMock = mock(BrokerBasedWebSessionCache.class);
+    when(cacheMock.asMap()).thenThrow(new IllegalStateException());
+    CleanupTask task = new CleanupTask(cacheMock, timeMachineMock, metricsMock, SOME_PLUGIN_NAME);
+    List<SliceResult> slices = new ArrayList<>();
+    task.setSliceListener(slices::add);
+
+    task.run();
+
+    assertThat(slices).containsExactly(SliceResult.FAILED);
+  }
+
+  @Test
+  public void testCleanupTaskIsRescheduledAfterCurrentIntervalOnFailure() {
+    BrokerBasedWebSessionCache cacheMock = mock(BrokerBasedWebSessionCache.class);
+    when(cacheMock.asMap()).thenThrow(new IllegalStateException());
+    CleanupTask task = new CleanupTask(cacheMock, timeMachineMock, metricsMock, SOME_PLUGIN_NAME);
+    when(cleanupTaskProviderMock.get()).thenReturn(task);
+    objectUnderTest.start();
+
+    task.run();
+    task.run();
+
+    verify(executorMock, times(2))
+        .schedule(
+            isA(CleanupTask.class),
+            eq(objectUnderTest.currentIntervalMillis),
+            eq(TimeUnit.MILLISECONDS));
+    assertThat(objectUnderTest.currentIntervalMillis).isEqualTo(600000L);
+    verify(executorMock, times(0))
+        .schedule(
+            isA(CleanupTask.class),
+            eq(objectUnderTest.cleanupMaxRunTimeMillis),
+            eq(TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testCleanupTaskRestartsPassAfterFailure() throws Exception {
+    int numberOfSessions = 200;
+    ConcurrentMap<String, Val> sessions = newSessions(numberOfSessions);
+    BrokerBasedWebSessionCache cacheMock = mock(BrokerBasedWebSessionCache.class);
+    when(cacheMock.asMap()).thenReturn(sessions);
+    when(timeMachineMock.now())
+        .thenReturn(Instant.EPOCH)
+        .thenThrow(new IllegalStateException())
+        .thenReturn(Instant.MAX);
+    CleanupTask task = new CleanupTask(cacheMock, timeMachineMock, metricsMock, SOME_PLUGIN_NAME);
+    task.setMaxRunTimeMillis(0);
+
+    task.run();
+    task.run();
+    task.setMaxRunTimeMillis(Long.MAX_VALUE);
+    task.run();
+
+    assertThat(sessions).isEmpty();
+    assertThat(task.getPassScanned()).isEqualTo(numberOfSessions);
+    assertThat(task.getPassExpired()).isEqualTo(numberOfSessions);
+  }
+
+  @Test
+  public void testNonPositiveCleanupIntervalFallsBackToDefault() {
+    when(pluginConfig.getString("cleanupInterval")).thenReturn("0");
+    objectUnderTest =
+        new BrokerBasedWebSessionCacheCleaner(
+            workQueueMock, cleanupTaskProviderMock, cfg, SOME_PLUGIN_NAME);
+
+    assertThat(objectUnderTest.cleanupIntervalMillis).isEqualTo(3600000L);
+    assertThat(objectUnderTest.cleanupMinIntervalMillis).isEqualTo(600000L);
+  }
+
+  @Test
+  public void testCleanupIntervalAdaptsToExpiryDensity() {
+    assertThat(objectUnderTest.nextDelayMillis(SliceResult.INCOMPLETE, 100, 100))
+        .isEqualTo(objectUnderTest.cleanupMaxRunTimeMillis);
+    assertThat(objectUnderTest.nextDelayMillis(SliceResult.FAILED, 100, 100)).isEqualTo(600000L);
+    assertThat(objectUnderTest.nextDelayMillis(SliceResult.COMPLETED, 100, 0)).isEqualTo(1200000L);
+    assertThat(objectUnderTest.nextDelayMillis(SliceResult.COMPLETED, 100, 0)).isEqualTo(2400000L);
+    assertThat(objectUnderTest.nextDelayMillis(SliceResult.COMPLETED, 100, 0)).isEqualTo(3600000L);
+    assertThat(objectUnderTest.nextDelayMillis(SliceResult.COMPLETED, 100, 5)).isEqualTo(3600000L);
+    assertThat(objectUnderTest.nextDelayMillis(SliceResult.COMPLETED, 100, 50)).isEqualTo(1800000L);
+    assertThat(objectUnderTest.nextDelayMillis(SliceResult.COMPLETED, 100, 50)).isEqualTo(900000L);
+    assertThat(objectUnderTest.nextDelayMillis(SliceResult.COMPLETED, 100, 50)).isEqualTo(600000L);
   }
 
   @Test
@@ -89,6 +234,7 @@ public class BrokerBasedWebSessionCacheCleanerTest {
     objectUnderTest.start();
     objectUnderTest.stop();
     verify(scheduledFutureMock, times(1)).cancel(true);
+    verify(executorMock, times(1)).shutdownNow();
   }
 
   @Test
@@ -98,4 +244,23 @@ public class BrokerBasedWebSessionCacheCleanerTest {
     objectUnderTest.stop();
     verify(scheduledFutureMock, times(1)).cancel(true);
   }
+
+  private CleanupTask newCleanupTask(ConcurrentMap<String, Val> sessions, Instant now) {
+    BrokerBasedWebSessionCache cacheMock = mock(BrokerBasedWebSessionCache.class);
+    when(cacheMock.asMap()).thenReturn(sessions);
+    when(timeMachineMock.now()).thenReturn(now);
+    return new CleanupTask(cacheMock, timeMachineMock, metricsMock, SOME_PLUGIN_NAME);
+  }
+
+  private ConcurrentMap<String, Val> newSessions(int numberOfSessions) throws Exception {
+    ConcurrentMap<String, Val> sessions = Maps.newConcurrentMap();
+    for (int i = 0; i < numberOfSessions; i++) {
+      try (ObjectInputStream in =
+          new ObjectInputStream(
+              new ByteArrayInputStream(BrokerBasedWebSessionCacheTest.defaultPayload))) {
+        sessions.put("session" + i, (Val) in.readObject());
+      }
+    }
+    return sessions;
+  }
 }
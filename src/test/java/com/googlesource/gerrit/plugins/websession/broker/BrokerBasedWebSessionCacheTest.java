@@ -16,7 +16,11 @@ package com.googlesource.gerrit.plugins.websession.broker;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -55,7 +59,7 @@ public class BrokerBasedWebSessionCacheTest {
   private static final String PLUGIN_NAME = "websession-broker";
 
   private byte[] emptyPayload = new byte[] {-84, -19, 0, 5, 112};
-  byte[] defaultPayload =
+  static byte[] defaultPayload =
       new byte[] {
         -84, -19, 0, 5, 115, 114, 0, 45, 99, 111, 109, 46, 103, 111, 111, 103, 108, 101, 46, 103,
         101, 114, 114, 105, 116, 46, 104, 116, 116, 112, 100, 46, 87, 101, 98, 83, 101, 115, 115,
@@ -70,11 +74,13 @@ public class BrokerBasedWebSessionCacheTest {
   @Mock BrokerApi brokerApi;
   @Mock Cache<String, Val> cache;
   @Mock TimeMachine timeMachine;
+  @Mock BrokerBasedWebSessionMetrics metrics;
   @Mock PluginConfigFactory cfg;
   @Mock PluginConfig pluginConfig;
   @Captor ArgumentCaptor<EventMessage> eventCaptor;
   @Captor ArgumentCaptor<Val> valCaptor;
 
+  ConcurrentMap<String, Val> cacheMap = Maps.newConcurrentMap();
   BrokerBasedWebSessionCache objectUnderTest;
 
   @Before
@@ -83,8 +89,8 @@ public class BrokerBasedWebSessionCacheTest {
         .thenReturn("gerrit_web_session");
     when(cfg.getFromGerritConfig(PLUGIN_NAME)).thenReturn(pluginConfig);
     when(timeMachine.now()).thenReturn(Instant.EPOCH);
-    DynamicItem<BrokerApi> item = DynamicItem.itemOf(BrokerApi.class, brokerApi);
-    objectUnderTest = new BrokerBasedWebSessionCache(cache, item, timeMachine, cfg, PLUGIN_NAME);
+    when(cache.asMap()).thenReturn(cacheMap);
+    objectUnderTest = createCache();
   }
 
   @Test
@@ -104,6 +110,18 @@ public class BrokerBasedWebSessionCacheTest {
     assertThat(event.payload).isEqualTo(defaultPayload);
   }
 
+  @Test
+  public void shouldNotLookUpCurrentSessionWhenTouchDisabled() {
+    EventMessage eventMessage = createEventMessage();
+    Val value = createVal(eventMessage);
+    when(brokerApi.newMessage(any(UUID.class), any(Event.class))).thenReturn(eventMessage);
+
+    objectUnderTest.put(KEY, value);
+
+    verify(cache, never()).getIfPresent(any());
+    verify(cache, times(1)).put(KEY, value);
+  }
+
   @Test
   public void shouldPublishMessageWhenLogoutEvent() {
     EventMessage eventMessage = createEventMessage(emptyPayload, Operation.REMOVE);
@@ -135,11 +153,310 @@ public class BrokerBasedWebSessionCacheTest {
 
   @Test
   public void shouldUpdateCacheWhenLogoutMessageReceived() {
+    cacheMap.put(KEY, createVal(createEventMessage()));
     EventMessage eventMessage = createEventMessage(emptyPayload, Operation.REMOVE);
 
     objectUnderTest.processMessage(eventMessage);
 
+    assertThat(cacheMap).doesNotContainKey(KEY);
+  }
+
+  @Test
+  public void shouldPublishTouchMessageWhenSessionRefreshed() {
+    objectUnderTest = createTouchRefreshesCache();
+    EventMessage eventMessage = createEventMessage();
+    Val current = createVal(eventMessage);
+    Val refreshed = createVal(eventMessage);
+    when(cache.getIfPresent(KEY)).thenReturn(current);
+    when(brokerApi.newMessage(any(UUID.class), any(Event.class))).thenReturn(eventMessage);
+
+    objectUnderTest.put(KEY, refreshed);
+
+    ArgumentCaptor<Event> touchCaptor = ArgumentCaptor.forClass(Event.class);
+    verify(brokerApi, times(1)).newMessage(any(UUID.class), touchCaptor.capture());
+    WebSessionEvent event = (WebSessionEvent) touchCaptor.getValue();
+    assertThat(event.operation).isEqualTo(WebSessionEvent.Operation.TOUCH);
+    assertThat(event.key).isEqualTo(KEY);
+    assertThat(event.payload).isNull();
+    assertThat(event.expiresAt).isEqualTo(refreshed.getExpiresAt());
+    verify(cache, times(1)).put(KEY, refreshed);
+  }
+
+  @Test
+  public void shouldPublishLoginMessageWhenSessionRefreshedAndTouchDisabled() {
+    EventMessage eventMessage = createEventMessage();
+    Val current = createVal(eventMessage);
+    Val refreshed = createVal(eventMessage);
+    when(cache.getIfPresent(KEY)).thenReturn(current);
+    when(brokerApi.newMessage(any(UUID.class), any(Event.class))).thenReturn(eventMessage);
+
+    objectUnderTest.put(KEY, refreshed);
+
+    ArgumentCaptor<Event> addCaptor = ArgumentCaptor.forClass(Event.class);
+    verify(brokerApi, times(1)).newMessage(any(UUID.class), addCaptor.capture());
+    WebSessionEvent event = (WebSessionEvent) addCaptor.getValue();
+    assertThat(event.operation).isEqualTo(WebSessionEvent.Operation.ADD);
+    assertThat(event.payload).isEqualTo(defaultPayload);
+    assertThat(event.expiresAt).isNull();
+  }
+
+  @Test
+  public void shouldInvalidateSessionWhenTouchMessageExpiryIsInThePast() {
+    Val current = createVal(createEventMessage());
+    when(cache.getIfPresent(KEY)).thenReturn(current);
+    when(timeMachine.now()).thenReturn(Instant.ofEpochMilli(current.getExpiresAt() + 2000L));
+
+    objectUnderTest.processMessage(createTouchEventMessage(current.getExpiresAt() + 1000L));
+
     verify(cache, times(1)).invalidate(KEY);
+    verify(cache, times(0)).put(anyString(), any(Val.class));
+  }
+
+  @Test
+  public void shouldSkipCacheUpdateWhenUnknownOperation() {
+    EventMessage eventMessage = createEventMessage(defaultPayload, null);
+
+    objectUnderTest.processMessage(eventMessage);
+
+    verifyZeroInteractions(cache);
+  }
+
+  @Test
+  public void shouldReplaceSessionWithExtendedCopyWhenTouchMessageReceived() {
+    Val current = createVal(createEventMessage());
+    long currentExpiresAt = current.getExpiresAt();
+    long expiresAt = currentExpiresAt + 1000L;
+    cacheMap.put(KEY, current);
+    when(cache.getIfPresent(KEY)).thenReturn(current);
+
+    objectUnderTest.processMessage(createTouchEventMessage(expiresAt));
+
+    Val extended = cacheMap.get(KEY);
+    assertThat(extended).isNotSameInstanceAs(current);
+    assertThat(extended.getExpiresAt()).isEqualTo(expiresAt);
+    assertThat(extended.getSessionId()).isEqualTo(current.getSessionId());
+    assertThat(current.getExpiresAt()).isEqualTo(currentExpiresAt);
+  }
+
+  @Test
+  public void shouldSkipTouchWhenSessionReplacedConcurrently() {
+    Val current = createVal(createEventMessage());
+    Val other = createVal(createEventMessage());
+    cacheMap.put(KEY, other);
+    when(cache.getIfPresent(KEY)).thenReturn(current);
+
+    objectUnderTest.processMessage(createTouchEventMessage(current.getExpiresAt() + 1000L));
+
+    assertThat(cacheMap.get(KEY)).isSameInstanceAs(other);
+  }
+
+  @Test
+  public void shouldSkipTouchWithoutExpiry() {
+    objectUnderTest.processMessage(createEventMessage(null, Operation.TOUCH));
+
+    verifyZeroInteractions(cache);
+  }
+
+  @Test
+  public void shouldSkipTouchWhenSessionAlreadyExpiresLater() {
+    Val current = createVal(createEventMessage());
+    long expiresAt = current.getExpiresAt();
+    when(cache.getIfPresent(KEY)).thenReturn(current);
+
+    objectUnderTest.processMessage(createTouchEventMessage(expiresAt - 1000L));
+
+    verify(cache, times(0)).put(anyString(), any(Val.class));
+    verify(cache, never()).asMap();
+    assertThat(current.getExpiresAt()).isEqualTo(expiresAt);
+  }
+
+  @Test
+  public void shouldSkipTouchWhenSessionUnknown() {
+    objectUnderTest.processMessage(createTouchEventMessage(1000L));
+
+    verify(cache, times(0)).put(anyString(), any(Val.class));
+  }
+
+  @Test
+  public void shouldPublishToSiteTopicWhenSiteIdConfigured() {
+    objectUnderTest = createSiteScopedCache();
+    EventMessage eventMessage = createEventMessage();
+    Val value = createVal(eventMessage);
+    when(brokerApi.newMessage(any(UUID.class), any(Event.class))).thenReturn(eventMessage);
+
+    objectUnderTest.put(KEY, value);
+
+    verify(brokerApi, times(1)).send(eq("gerrit_web_session_site-a"), any(EventMessage.class));
+  }
+
+  @Test
+  public void shouldPublishLogoutToSiteAndPeerTopicsWhenSiteIdConfigured() {
+    objectUnderTest = createSiteScopedCache();
+    EventMessage eventMessage = createEventMessage(emptyPayload, Operation.REMOVE);
+    when(brokerApi.newMessage(any(UUID.class), any(Event.class))).thenReturn(eventMessage);
+
+    objectUnderTest.invalidate(KEY);
+
+    verify(brokerApi, times(1)).send("gerrit_web_session_site-a", eventMessage);
+    verify(brokerApi, times(1)).send("gerrit_web_session_site-b", eventMessage);
+  }
+
+  @Test
+  public void shouldSubscribeToSiteAndPeerTopicsWhenSiteIdConfigured() {
+    objectUnderTest = createSiteScopedCache();
+
+    objectUnderTest.start();
+
+    verify(brokerApi, times(1)).receiveAsync(eq("gerrit_web_session_site-a"), any());
+    verify(brokerApi, times(1)).receiveAsync(eq("gerrit_web_session_site-b"), any());
+    verify(brokerApi, times(1)).replayAllEvents("gerrit_web_session_site-a");
+    verify(brokerApi, times(1)).replayAllEvents("gerrit_web_session_site-b");
+    verify(brokerApi, times(0)).receiveAsync(eq("gerrit_web_session"), any());
+  }
+
+  @Test
+  public void shouldPublishLogoutToRevocationTopicWhenPriorityRevocationsEnabled() {
+    objectUnderTest = createPriorityRevocationsCache();
+    cacheMap.put(KEY, createVal(createEventMessage()));
+    EventMessage eventMessage = createEventMessage(emptyPayload, Operation.REMOVE);
+    when(brokerApi.newMessage(any(UUID.class), any(Event.class))).thenReturn(eventMessage);
+
+    objectUnderTest.invalidate(KEY);
+
+    verify(brokerApi, times(1)).send(eq("gerrit_web_session_revocation"), any(EventMessage.class));
+    verify(metrics, times(1)).recordRevocationPublishLatency(anyLong());
+    assertThat(cacheMap).doesNotContainKey(KEY);
+  }
+
+  @Test
+  public void shouldPublishLoginToWebSessionTopicWhenPriorityRevocationsEnabled() {
+    objectUnderTest = createPriorityRevocationsCache();
+    EventMessage eventMessage = createEventMessage();
+    Val value = createVal(eventMessage);
+    when(brokerApi.newMessage(any(UUID.class), any(Event.class))).thenReturn(eventMessage);
+
+    objectUnderTest.put(KEY, value);
+
+    verify(brokerApi, times(1)).send(eq("gerrit_web_session"), any(EventMessage.class));
+    verify(metrics, times(0)).recordRevocationPublishLatency(anyLong());
+  }
+
+  @Test
+  public void shouldSubscribeToRevocationAndWebSessionTopicsWhenPriorityRevocationsEnabled() {
+    objectUnderTest = createPriorityRevocationsCache();
+
+    objectUnderTest.start();
+
+    verify(brokerApi, times(1)).receiveAsync(eq("gerrit_web_session_revocation"), any());
+    verify(brokerApi, times(1)).replayAllEvents("gerrit_web_session_revocation");
+    verify(brokerApi, times(1)).receiveAsync(eq("gerrit_web_session"), any());
+    verify(brokerApi, times(1)).replayAllEvents("gerrit_web_session");
+  }
+
+  @Test
+  public void shouldSkipLoginMessageOfRevokedSessionWhenPriorityRevocationsEnabled() {
+    objectUnderTest = createPriorityRevocationsCache();
+
+    objectUnderTest.processMessage(createEventMessage(emptyPayload, Operation.REMOVE));
+    objectUnderTest.processMessage(createEventMessage());
+
+    verify(cache, times(0)).put(anyString(), any(Val.class));
+  }
+
+  @Test
+  public void shouldInvalidateLoginOfSessionRevokedWhileBeingAdded() {
+    objectUnderTest = createPriorityRevocationsCache();
+    doAnswer(
+            invocation -> {
+              objectUnderTest.processMessage(createEventMessage(emptyPayload, Operation.REMOVE));
+              return null;
+            })
+        .when(cache)
+        .put(anyString(), any(Val.class));
+
+    objectUnderTest.processMessage(createEventMessage());
+
+    verify(cache, times(1)).invalidate(KEY);
+  }
+
+  @Test
+  public void shouldRememberMoreRevokedSessionsThanWebSessionsCacheSize() {
+    objectUnderTest = createPriorityRevocationsCache();
+
+    objectUnderTest.processMessage(createEventMessage(emptyPayload, Operation.REMOVE));
+    for (int i = 0; i < 5000; i++) {
+      objectUnderTest.processMessage(createRemoveEventMessage("session" + i));
+    }
+    objectUnderTest.processMessage(createEventMessage());
+
+    assertThat(objectUnderTest.revokedSessions.size()).isEqualTo(5001L);
+    verify(cache, times(0)).put(anyString(), any(Val.class));
+  }
+
+  @Test
+  public void shouldForgetOldestRevokedSessionsPastMaxRevokedSessions() {
+    when(pluginConfig.getLong("maxRevokedSessions", 100000L)).thenReturn(2L);
+    objectUnderTest = createPriorityRevocationsCache();
+
+    objectUnderTest.processMessage(createEventMessage(emptyPayload, Operation.REMOVE));
+    objectUnderTest.processMessage(createRemoveEventMessage("session1"));
+    objectUnderTest.processMessage(createRemoveEventMessage("session2"));
+    objectUnderTest.processMessage(createEventMessage());
+
+    assertThat(objectUnderTest.revokedSessions.size()).isEqualTo(2L);
+    verify(cache, times(1)).put(eq(KEY), any(Val.class));
+  }
+
+  @Test
+  public void shouldRecordRevocationPropagationLatencyOnceForEachRemovedSession() {
+    objectUnderTest = createPriorityRevocationsCache();
+    objectUnderTest.start();
+    EventMessage eventMessage = createEventMessage(emptyPayload, Operation.REMOVE);
+    ((WebSessionEvent) eventMessage.getEvent()).sentAt = 1000L;
+    when(timeMachine.now()).thenReturn(Instant.ofEpochMilli(1500L));
+
+    objectUnderTest.processMessage(eventMessage);
+    objectUnderTest.processMessage(eventMessage);
+
+    verify(metrics, times(1)).recordRevocationPropagationLatency(500L);
+  }
+
+  @Test
+  public void shouldRecordRevocationPropagationLatency() {
+    cacheMap.put(KEY, createVal(createEventMessage()));
+    objectUnderTest.start();
+    EventMessage eventMessage = createEventMessage(emptyPayload, Operation.REMOVE);
+    ((WebSessionEvent) eventMessage.getEvent()).sentAt = 1000L;
+    when(timeMachine.now()).thenReturn(Instant.ofEpochMilli(1500L));
+
+    objectUnderTest.processMessage(eventMessage);
+
+    verify(metrics, times(1)).recordRevocationPropagationLatency(500L);
+  }
+
+  @Test
+  public void shouldNotRecordRevocationPropagationLatencyOfReplayedLogout() {
+    when(timeMachine.now()).thenReturn(Instant.ofEpochMilli(2000L));
+    objectUnderTest.start();
+    EventMessage eventMessage = createEventMessage(emptyPayload, Operation.REMOVE);
+    ((WebSessionEvent) eventMessage.getEvent()).sentAt = 1000L;
+
+    objectUnderTest.processMessage(eventMessage);
+
+    verify(metrics, times(0)).recordRevocationPropagationLatency(anyLong());
+  }
+
+  @Test
+  public void shouldNotSetSentAtOnLoginMessage() {
+    EventMessage eventMessage = createEventMessage();
+    Val value = createVal(eventMessage);
+    when(brokerApi.newMessage(any(UUID.class), any(Event.class))).thenReturn(eventMessage);
+
+    objectUnderTest.put(KEY, value);
+
+    ArgumentCaptor<Event> addCaptor = ArgumentCaptor.forClass(Event.class);
+    verify(brokerApi, times(1)).newMessage(any(UUID.class), addCaptor.capture());
+    assertThat(((WebSessionEvent) addCaptor.getValue()).sentAt).isNull();
   }
 
   @Test
@@ -191,6 +508,27 @@ public class BrokerBasedWebSessionCacheTest {
     verify(cache, times(1)).invalidate(KEY);
   }
 
+  private BrokerBasedWebSessionCache createSiteScopedCache() {
+    when(pluginConfig.getString("siteId")).thenReturn("site-a");
+    when(pluginConfig.getStringList("peerSite")).thenReturn(new String[] {"site-b"});
+    return createCache();
+  }
+
+  private BrokerBasedWebSessionCache createTouchRefreshesCache() {
+    when(pluginConfig.getBoolean("publishRefreshesAsTouch", false)).thenReturn(true);
+    return createCache();
+  }
+
+  private BrokerBasedWebSessionCache createPriorityRevocationsCache() {
+    when(pluginConfig.getBoolean("priorityRevocations", false)).thenReturn(true);
+    return createCache();
+  }
+
+  private BrokerBasedWebSessionCache createCache() {
+    DynamicItem<BrokerApi> item = DynamicItem.itemOf(BrokerApi.class, brokerApi);
+    return new BrokerBasedWebSessionCache(cache, item, timeMachine, metrics, cfg, PLUGIN_NAME);
+  }
+
   @SuppressWarnings("unchecked")
   private Val createVal(EventMessage message) {
     ArgumentCaptor<Val> valArgumentCaptor = ArgumentCaptor.forClass(Val.class);
@@ -198,6 +536,7 @@ public class BrokerBasedWebSessionCacheTest {
     objectUnderTest.processMessage(message);
     verify(cache).put(anyString(), valArgumentCaptor.capture());
     reset(cache);
+    when(cache.asMap()).thenReturn(cacheMap);
     return valArgumentCaptor.getValue();
   }
 
@@ -206,13 +545,24 @@ public class BrokerBasedWebSessionCacheTest {
     return createEventMessage(defaultPayload, Operation.ADD);
   }
 
+  private EventMessage createTouchEventMessage(long expiresAt) {
+    return new EventMessage(createHeader(), new WebSessionEvent(KEY, expiresAt));
+  }
+
+  private EventMessage createRemoveEventMessage(String key) {
+    return new EventMessage(
+        createHeader(), new WebSessionEvent(key, emptyPayload, Operation.REMOVE));
+  }
+
   private EventMessage createEventMessage(byte[] payload, Operation operation) {
 
-    Header header =
-        new Header(
-            UUID.fromString("7cb80dbe-65c4-4f2c-84de-580d98199d4a"),
-            UUID.fromString("97711495-1013-414e-bfd2-44776787520d"));
     WebSessionEvent event = new WebSessionEvent(KEY, payload, operation);
-    return new EventMessage(header, event);
+    return new EventMessage(createHeader(), event);
+  }
+
+  private Header createHeader() {
+    return new Header(
+        UUID.fromString("7cb80dbe-65c4-4f2c-84de-580d98199d4a"),
+        UUID.fromString("97711495-1013-414e-bfd2-44776787520d"));
   }
 }
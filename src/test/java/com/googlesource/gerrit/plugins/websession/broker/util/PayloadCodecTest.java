@@ -0,0 +1,98 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.broker.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.Objects;
+import org.junit.Test;
+
+public class PayloadCodecTest {
+  private final PayloadEncoder encoder = new PayloadEncoder();
+  private final PayloadDecoder decoder = new PayloadDecoder();
+
+  @Test
+  public void shouldEncodeLikeAFreshObjectOutputStream() throws Exception {
+    Sample sample = new Sample(1000000, "aSceprqVW6UO-X3k3tfUmVgRIZ85cc4GrW");
+
+    assertThat(encoder.encode(sample)).isEqualTo(freshEncode(sample));
+    assertThat(encoder.encode(sample)).isEqualTo(freshEncode(sample));
+    assertThat(encoder.encode(null)).isEqualTo(freshEncode(null));
+  }
+
+  @Test
+  public void shouldDecodeSuccessivePayloads() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      Sample sample = new Sample(i, "session" + i);
+      assertThat(decoder.decode(encoder.encode(sample))).isEqualTo(sample);
+      assertThat(decoder.decode(freshEncode(sample))).isEqualTo(sample);
+    }
+    assertThat(decoder.decode(encoder.encode(null))).isNull();
+  }
+
+  @Test(expected = StreamCorruptedException.class)
+  public void shouldRejectPayloadWithInvalidHeader() throws Exception {
+    decoder.decode(new byte[] {1, 2, 3, 4});
+  }
+
+  @Test(expected = StreamCorruptedException.class)
+  public void shouldRejectPayloadWithTrailingData() throws Exception {
+    byte[] payload = encoder.encode(new Sample(1, "session"));
+    byte[] withTrailingData = new byte[payload.length + 1];
+    System.arraycopy(payload, 0, withTrailingData, 0, payload.length);
+
+    decoder.decode(withTrailingData);
+  }
+
+  private static byte[] freshEncode(Object value) throws IOException {
+    try (ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(out)) {
+      objectOutputStream.writeObject(value);
+      objectOutputStream.flush();
+      return out.toByteArray();
+    }
+  }
+
+  private static class Sample implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int accountId;
+    private final String sessionId;
+
+    Sample(int accountId, String sessionId) {
+      this.accountId = accountId;
+      this.sessionId = sessionId;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Sample)) {
+        return false;
+      }
+      Sample sample = (Sample) other;
+      return accountId == sample.accountId && Objects.equals(sessionId, sample.sessionId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(accountId, sessionId);
+    }
+  }
+}